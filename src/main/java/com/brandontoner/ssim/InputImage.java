@@ -1,9 +1,11 @@
 package com.brandontoner.ssim;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.imageio.ImageIO;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -12,6 +14,8 @@ import java.util.List;
 
 final class InputImage {
     private static final int IMAGE_SIZE = 128;
+    /** Relative difference allowed between the aspect ratios of a thumbnail and its image. */
+    private static final double MAX_ASPECT_RATIO_DIFFERENCE = 0.02;
     @Nonnull
     private final File file;
     private final float average;
@@ -22,6 +26,7 @@ final class InputImage {
     @Nonnull
     private final float[] lumasMinusAverage;
     private final boolean isKeep;
+    private final boolean isFromThumbnail;
 
     /**
      * Constructor.
@@ -33,6 +38,7 @@ final class InputImage {
      * @param variance variance of the lumas of the scaled image
      * @param rgb
      * @param isKeep
+     * @param isFromThumbnail whether the features were computed from the embedded EXIF thumbnail
      */
     private InputImage(@Nonnull File file,
                        @Nonnull float[] lumas,
@@ -40,7 +46,8 @@ final class InputImage {
                        int area,
                        float variance,
                        @Nonnull double[] rgb,
-                       boolean isKeep) {
+                       boolean isKeep,
+                       boolean isFromThumbnail) {
         this.file = file;
         this.average = average;
         this.area = area;
@@ -48,6 +55,7 @@ final class InputImage {
         this.rgb = rgb;
         this.lumasMinusAverage = new float[lumas.length];
         this.isKeep = isKeep;
+        this.isFromThumbnail = isFromThumbnail;
         for (int i = 0; i < lumas.length; i++) {
             lumasMinusAverage[i] = lumas[i] - average;
         }
@@ -128,48 +136,114 @@ final class InputImage {
     /**
      * Loads an input image from a file.
      *
-     * @param path input image path
+     * @param path          input image path
      * @param isKeep
+     * @param useThumbnails whether to compute features from the embedded EXIF thumbnail when there is one
      * @return input image
      */
     @Nonnull
-    static List<InputImage> load(@Nonnull Path path, boolean isKeep) {
+    static List<InputImage> load(@Nonnull Path path, boolean isKeep, boolean useThumbnails) {
         try {
             Logger.log("Loading " + path);
             File file = path.toFile();
+            if (useThumbnails) {
+                InputImage fromThumbnail = loadThumbnail(path, isKeep);
+                if (fromThumbnail != null) {
+                    return List.of(fromThumbnail);
+                }
+            }
             BufferedImage img = ImageIO.read(file);
             if (img == null) {
                 return List.of();
             }
-            BufferedImage scaled = scaleImage(img);
-            int width = scaled.getWidth();
-            int height = scaled.getHeight();
-            int[] rgb = scaled.getRGB(0, 0, width, height, null, 0, width);
-
-            // Rotate the image to find the canonical orientation. Doesn't matter what it is, as long as all duplicates
-            // would have the same canonical orientation.
-            float[] lumas = null;
-            for (RotateFunction function : RotateFunction.FUNCTIONS) {
-                float[] lumas1 = getLumas(width, height, rgb, function);
-                if (lumas == null || compare(lumas1, lumas) < 0) {
-                    lumas = lumas1;
-                }
-            }
-
-            float average = average(lumas);
-            return List.of(new InputImage(file,
-                                          lumas,
-                                          average,
-                                          img.getWidth() * img.getHeight(),
-                                          variance(lumas, average),
-                                          getAverageRGB(rgb),
-                                          isKeep));
+            return List.of(create(file, img, img.getWidth() * img.getHeight(), isKeep, false));
         } catch (IOException e) {
             new UncheckedIOException(path + " " + e.getMessage(), e).printStackTrace();
             return List.of();
         }
     }
 
+    /**
+     * Loads an input image from the embedded EXIF thumbnail of a file.
+     *
+     * @param path   input image path
+     * @param isKeep
+     * @return input image, or null if the file has no usable thumbnail and must be fully decoded
+     */
+    @CheckForNull
+    private static InputImage loadThumbnail(@Nonnull Path path, boolean isKeep) {
+        try {
+            JpegHeader header = JpegHeader.read(path);
+            if (header == null || header.getThumbnail() == null) {
+                return null;
+            }
+            BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(header.getThumbnail()));
+            if (thumbnail == null || !isSameAspectRatio(thumbnail, header)) {
+                return null;
+            }
+            return create(path.toFile(), thumbnail, header.getWidth() * header.getHeight(), isKeep, true);
+        } catch (IOException e) {
+            Logger.log("Falling back to full decode of " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Computes the features of an image.
+     *
+     * @param file   image file
+     * @param img    decoded image, either the full image or its thumbnail
+     * @param area   area of the original image
+     * @param isKeep
+     * @param isFromThumbnail whether {@code img} is the embedded EXIF thumbnail
+     * @return input image
+     */
+    @Nonnull
+    private static InputImage create(@Nonnull File file,
+                                     @Nonnull BufferedImage img,
+                                     int area,
+                                     boolean isKeep,
+                                     boolean isFromThumbnail) {
+        BufferedImage scaled = scaleImage(img);
+        int width = scaled.getWidth();
+        int height = scaled.getHeight();
+        int[] rgb = scaled.getRGB(0, 0, width, height, null, 0, width);
+
+        // Rotate the image to find the canonical orientation. Doesn't matter what it is, as long as all duplicates
+        // would have the same canonical orientation.
+        float[] lumas = null;
+        for (RotateFunction function : RotateFunction.FUNCTIONS) {
+            float[] lumas1 = getLumas(width, height, rgb, function);
+            if (lumas == null || compare(lumas1, lumas) < 0) {
+                lumas = lumas1;
+            }
+        }
+
+        float average = average(lumas);
+        return new InputImage(file,
+                              lumas,
+                              average,
+                              area,
+                              variance(lumas, average),
+                              getAverageRGB(rgb),
+                              isKeep,
+                              isFromThumbnail);
+    }
+
+    /**
+     * Checks whether a thumbnail has the aspect ratio of the full image. Thumbnails of images with a different aspect
+     * ratio are usually letterboxed, which would skew the features.
+     *
+     * @param thumbnail decoded thumbnail
+     * @param header    header of the full image
+     * @return true if the aspect ratios are within {@value MAX_ASPECT_RATIO_DIFFERENCE} of each other
+     */
+    private static boolean isSameAspectRatio(@Nonnull BufferedImage thumbnail, @Nonnull JpegHeader header) {
+        double thumbnailRatio = (double) thumbnail.getWidth() / thumbnail.getHeight();
+        double imageRatio = (double) header.getWidth() / header.getHeight();
+        return Math.abs(thumbnailRatio / imageRatio - 1) <= MAX_ASPECT_RATIO_DIFFERENCE;
+    }
+
     private static int compare(@Nonnull float[] a, float[] b) {
         float aSum = 0;
         float bSum = 0;
@@ -247,4 +321,11 @@ final class InputImage {
     boolean isKeep() {
         return isKeep;
     }
+
+    /**
+     * @return whether the features were computed from the embedded EXIF thumbnail instead of the full image
+     */
+    boolean isFromThumbnail() {
+        return isFromThumbnail;
+    }
 }
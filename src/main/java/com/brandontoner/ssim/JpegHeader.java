@@ -0,0 +1,187 @@
+package com.brandontoner.ssim;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Dimensions and embedded EXIF thumbnail of a JPEG file, read from the segments before the image data without
+ * decoding the image itself.
+ */
+final class JpegHeader {
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP1 = 0xE1;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private final int width;
+    private final int height;
+    @CheckForNull
+    private final byte[] thumbnail;
+
+    /**
+     * Constructor.
+     *
+     * @param width     width of the full image
+     * @param height    height of the full image
+     * @param thumbnail JPEG encoded EXIF thumbnail, or null if there is none
+     */
+    private JpegHeader(int width, int height, @CheckForNull byte[] thumbnail) {
+        this.width = width;
+        this.height = height;
+        this.thumbnail = thumbnail;
+    }
+
+    /**
+     * Reads the header of a JPEG file. Reading stops at the first start of frame segment, so only the first few
+     * kilobytes of the file are read.
+     *
+     * @param path JPEG file
+     * @return header, or null if the file is not a JPEG or has no start of frame segment
+     * @throws IOException if the file can't be read
+     */
+    @CheckForNull
+    static JpegHeader read(@Nonnull Path path) throws IOException {
+        try (InputStream is = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(is))) {
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != SOI) {
+                return null;
+            }
+            byte[] thumbnail = null;
+            while (true) {
+                if (in.readUnsignedByte() != 0xFF) {
+                    return null;
+                }
+                int marker = in.readUnsignedByte();
+                while (marker == 0xFF) {
+                    // fill bytes
+                    marker = in.readUnsignedByte();
+                }
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                    // standalone markers have no length
+                    continue;
+                }
+                if (marker == SOS || marker == EOI) {
+                    return null;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (isStartOfFrame(marker)) {
+                    in.readUnsignedByte(); // sample precision
+                    int height = in.readUnsignedShort();
+                    int width = in.readUnsignedShort();
+                    if (width == 0 || height == 0) {
+                        return null;
+                    }
+                    return new JpegHeader(width, height, thumbnail);
+                }
+                if (marker == APP1 && thumbnail == null) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    thumbnail = exifThumbnail(segment);
+                } else {
+                    in.skipNBytes(length);
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param marker segment marker
+     * @return true if the marker is one of the start of frame markers
+     */
+    private static boolean isStartOfFrame(int marker) {
+        // 0xC4, 0xC8 and 0xCC are DHT, JPG and DAC, which share the range
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * Extracts the thumbnail from an APP1 segment. The thumbnail is referenced by the second IFD of the TIFF
+     * structure following the {@code Exif\0\0} identifier.
+     *
+     * @param segment APP1 segment payload
+     * @return JPEG encoded thumbnail, or null if the segment has none
+     */
+    @CheckForNull
+    private static byte[] exifThumbnail(@Nonnull byte[] segment) {
+        if (segment.length < 14
+                || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' || segment[3] != 'f'
+                || segment[4] != 0 || segment[5] != 0) {
+            return null;
+        }
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 6, segment.length - 6).slice();
+        if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.get(0) == 'M' && tiff.get(1) == 'M') {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return null;
+        }
+        try {
+            if (tiff.getShort(2) != 42) {
+                return null;
+            }
+            int ifd0 = tiff.getInt(4);
+            int ifd1 = tiff.getInt(ifd0 + 2 + 12 * Short.toUnsignedInt(tiff.getShort(ifd0)));
+            if (ifd1 <= 0) {
+                return null;
+            }
+            int entries = Short.toUnsignedInt(tiff.getShort(ifd1));
+            int offset = -1;
+            int length = -1;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd1 + 2 + 12 * i;
+                int tag = Short.toUnsignedInt(tiff.getShort(entry));
+                if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+                    offset = tiff.getInt(entry + 8);
+                } else if (tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                    length = tiff.getInt(entry + 8);
+                }
+            }
+            if (offset <= 0 || length <= 0 || offset > tiff.limit() - length) {
+                return null;
+            }
+            byte[] thumbnail = new byte[length];
+            tiff.get(offset, thumbnail);
+            return thumbnail;
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return width of the full image
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the full image
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return JPEG encoded EXIF thumbnail, or null if there is none
+     */
+    @CheckForNull
+    byte[] getThumbnail() {
+        return thumbnail;
+    }
+}
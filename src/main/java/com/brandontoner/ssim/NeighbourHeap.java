@@ -0,0 +1,125 @@
+package com.brandontoner.ssim;
+
+/**
+ * Fixed-size min-heap of the most similar neighbours of an image. Neighbours are stored as indices and SSIMs in
+ * primitive arrays, so memory use is bounded by the capacity regardless of how many neighbours are offered.
+ */
+final class NeighbourHeap {
+    private final int[] indices;
+    private final double[] scores;
+    private int size;
+    /** Smallest SSIM in the heap once it is full, so offers that can't be accepted skip the lock. */
+    private volatile double min = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity maximum number of neighbours to keep
+     */
+    NeighbourHeap(int capacity) {
+        this.indices = new int[capacity];
+        this.scores = new double[capacity];
+    }
+
+    /**
+     * Offers a neighbour. It is kept if the heap isn't full or it is more similar than the least similar neighbour.
+     * Safe to call from multiple threads.
+     *
+     * @param index index of the neighbour
+     * @param score SSIM with the neighbour
+     */
+    void offer(int index, double score) {
+        if (score <= min) {
+            return;
+        }
+        synchronized (this) {
+            if (size < scores.length) {
+                indices[size] = index;
+                scores[size] = score;
+                siftUp(size++);
+            } else if (score > scores[0]) {
+                indices[0] = index;
+                scores[0] = score;
+                siftDown(0, size);
+            } else {
+                return;
+            }
+            if (size == scores.length) {
+                min = scores[0];
+            }
+        }
+    }
+
+    /**
+     * Sorts the neighbours from most to least similar. The heap must not be offered to afterwards.
+     */
+    synchronized void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        min = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return number of neighbours in the heap
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param i position in the heap, after {@link #sort()} the {@code i}th most similar neighbour
+     * @return index of the neighbour
+     */
+    synchronized int getIndex(int i) {
+        return indices[i];
+    }
+
+    /**
+     * @param i position in the heap, after {@link #sort()} the {@code i}th most similar neighbour
+     * @return SSIM with the neighbour
+     */
+    synchronized double getScore(int i) {
+        return scores[i];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (scores[parent] <= scores[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < end && scores[left] < scores[smallest]) {
+                smallest = left;
+            }
+            if (right < end && scores[right] < scores[smallest]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int index = indices[a];
+        indices[a] = indices[b];
+        indices[b] = index;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
@@ -1,11 +1,14 @@
 package com.brandontoner.ssim;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -27,6 +30,10 @@ public class StructuralSimilarity {
     private final Set<Path> keepFolders;
     private final DuplicateHandler duplicateHandler;
     private final Set<String> extensions;
+    private final boolean useThumbnails;
+    private final int neighbourCount;
+    @CheckForNull
+    private final Path neighbourReport;
     private final Set<File> kept = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
     private StructuralSimilarity(@Nonnull Builder builder) {
@@ -35,6 +42,9 @@ public class StructuralSimilarity {
         this.keepFolders = Set.copyOf(builder.keepFolders);
         this.duplicateHandler = builder.duplicateHandler;
         this.extensions = Set.copyOf(builder.extensions);
+        this.useThumbnails = builder.useThumbnails;
+        this.neighbourCount = builder.neighbourCount;
+        this.neighbourReport = builder.neighbourReport;
     }
 
     @Nonnull
@@ -49,7 +59,7 @@ public class StructuralSimilarity {
                                              .filter(v -> extensions.contains(getExtension(v)))
                                              .collect(Collectors.toUnmodifiableSet());
         List<InputImage> deleteImages = deletePaths.parallelStream()
-                                                   .map(path -> InputImage.load(path, false))
+                                                   .map(path -> InputImage.load(path, false, useThumbnails))
                                                    .flatMap(Collection::parallelStream)
                                                    .toList();
 
@@ -59,10 +69,14 @@ public class StructuralSimilarity {
                                          .filter(v -> extensions.contains(getExtension(v)))
                                          .collect(Collectors.toUnmodifiableSet());
         List<InputImage> keepImages = keepPaths.parallelStream()
-                                               .map(path -> InputImage.load(path, true))
+                                               .map(path -> InputImage.load(path, true, useThumbnails))
                                                .flatMap(Collection::parallelStream)
                                                .toList();
 
+        if (neighbourReport != null) {
+            writeNeighbourReport(neighbourReport, keepImages, deleteImages);
+            return;
+        }
 
         Logger.log("Computing SSIMs");
 
@@ -80,6 +94,9 @@ public class StructuralSimilarity {
                                  .filter(ssim -> ssim.ssim() >= threshold)
                                  .sorted(Comparator.comparingDouble(SSIM::ssim).reversed())
                                  .toList();
+        if (useThumbnails) {
+            pairs = verifyThumbnailPairs(pairs);
+        }
 
         System.out.println("keep\tdelete\tssim");
 
@@ -133,6 +150,109 @@ public class StructuralSimilarity {
         keepPerFolder.entrySet().forEach(System.err::println);
     }
 
+    /**
+     * Writes the {@code neighbourCount} most similar images of each image to a TSV file. The same pairs are compared
+     * as in the duplicate search, but no threshold is applied, so the report can be re-thresholded offline. The
+     * duplicate search also requires the average colours to be close, which is recorded in the {@code rgbClose}
+     * column rather than applied. SSIMs computed from at least one EXIF thumbnail are not re-checked against the full
+     * images, and are marked in the {@code thumbnail} column. Images are referenced by index into a table written to
+     * {@link #imageTable(Path)}.
+     *
+     * @param report       output file
+     * @param keepImages   images that are not eligible to be deleted
+     * @param deleteImages images that are eligible to be deleted
+     * @throws IOException if the report can't be written
+     */
+    private void writeNeighbourReport(@Nonnull Path report,
+                                      @Nonnull List<InputImage> keepImages,
+                                      @Nonnull List<InputImage> deleteImages) throws IOException {
+        Logger.log("Computing " + neighbourCount + " nearest neighbours");
+
+        // Delete images come first, so each image is compared with the delete images before it, which covers both
+        // delete-delete and keep-delete pairs.
+        List<InputImage> images = Stream.concat(deleteImages.stream(), keepImages.stream()).toList();
+        int deleteCount = deleteImages.size();
+        NeighbourHeap[] heaps = new NeighbourHeap[images.size()];
+        Arrays.setAll(heaps, i -> new NeighbourHeap(neighbourCount));
+        IntStream.range(0, images.size()).parallel().forEach(i -> {
+            InputImage imgi = images.get(i);
+            for (int j = 0; j < i && j < deleteCount; j++) {
+                double ssim = new SSIM(imgi, images.get(j)).ssim();
+                heaps[i].offer(j, ssim);
+                heaps[j].offer(i, ssim);
+            }
+        });
+
+        Path imageTable = imageTable(report);
+        Logger.log("Writing " + imageTable);
+        try (BufferedWriter writer = Files.newBufferedWriter(imageTable)) {
+            writer.write("index\tkeep\tpath");
+            writer.newLine();
+            for (int i = 0; i < images.size(); i++) {
+                InputImage image = images.get(i);
+                writer.write(i + "\t" + image.isKeep() + "\t" + escapeTsv(image.getFile().toString()));
+                writer.newLine();
+            }
+        }
+
+        Logger.log("Writing " + report);
+        try (BufferedWriter writer = Files.newBufferedWriter(report)) {
+            writer.write("image\tneighbour\tssim\trgbClose\tthumbnail");
+            writer.newLine();
+            for (int i = 0; i < heaps.length; i++) {
+                NeighbourHeap heap = heaps[i];
+                heap.sort();
+                for (int j = 0; j < heap.size(); j++) {
+                    int neighbour = heap.getIndex(j);
+                    InputImage image = images.get(i);
+                    InputImage other = images.get(neighbour);
+                    boolean rgbClose = isRgbClose(image, other);
+                    boolean thumbnail = image.isFromThumbnail() || other.isFromThumbnail();
+                    writer.write(i + "\t" + neighbour + "\t" + heap.getScore(j) + "\t" + rgbClose + "\t" + thumbnail);
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Escapes a TSV field, so paths containing tabs or line breaks can't shift columns or rows. Backslash, tab, line
+     * feed and carriage return are written as {@code \\}, {@code \t}, {@code \n} and {@code \r}.
+     *
+     * @param field field to escape
+     * @return escaped field
+     */
+    @Nonnull
+    private static String escapeTsv(@Nonnull String field) {
+        StringBuilder builder = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\' -> builder.append("\\\\");
+                case '\t' -> builder.append("\\t");
+                case '\n' -> builder.append("\\n");
+                case '\r' -> builder.append("\\r");
+                default -> builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Gets the path of the image table for a neighbour report, e.g. {@code neighbours.images.tsv} for
+     * {@code neighbours.tsv}.
+     *
+     * @param report neighbour report path
+     * @return image table path
+     */
+    @Nonnull
+    private static Path imageTable(@Nonnull Path report) {
+        String name = report.getFileName().toString();
+        int index = name.lastIndexOf('.');
+        String base = index > 0 ? name.substring(0, index) : name;
+        return report.resolveSibling(base + ".images.tsv");
+    }
+
     private static Stream<Path> walk(Path path) {
         try {
             return Files.walk(path);
@@ -148,6 +268,42 @@ public class StructuralSimilarity {
         return string.substring(index).toLowerCase();
     }
 
+    /**
+     * Re-checks pairs found from thumbnails against the full images. EXIF thumbnails are often not regenerated after
+     * edits, so an edited copy and its original can have identical thumbnails. Each image that was loaded from a
+     * thumbnail and appears in a pair is fully decoded once.
+     *
+     * @param pairs pairs above the threshold, most similar first
+     * @return pairs whose full images are above the threshold, most similar first
+     */
+    @Nonnull
+    private List<SSIM> verifyThumbnailPairs(@Nonnull List<SSIM> pairs) {
+        List<InputImage> thumbnailImages = pairs.stream()
+                                                .flatMap(pair -> Stream.of(pair.one(), pair.two()))
+                                                .filter(InputImage::isFromThumbnail)
+                                                .distinct()
+                                                .toList();
+        Map<InputImage, InputImage> fullImages = new ConcurrentHashMap<>();
+        thumbnailImages.parallelStream().forEach(image -> {
+            for (InputImage full : InputImage.load(image.getFile().toPath(), image.isKeep(), false)) {
+                fullImages.put(image, full);
+            }
+        });
+        return pairs.parallelStream()
+                    .map(pair -> {
+                        if (!pair.one().isFromThumbnail() && !pair.two().isFromThumbnail()) {
+                            return pair;
+                        }
+                        InputImage one = pair.one().isFromThumbnail() ? fullImages.get(pair.one()) : pair.one();
+                        InputImage two = pair.two().isFromThumbnail() ? fullImages.get(pair.two()) : pair.two();
+                        return one == null || two == null ? null : new SSIM(one, two);
+                    })
+                    .filter(Objects::nonNull)
+                    .filter(ssim -> ssim.ssim() >= threshold)
+                    .sorted(Comparator.comparingDouble(SSIM::ssim).reversed())
+                    .toList();
+    }
+
     private static boolean isRgbClose(@Nonnull InputImage a, @Nonnull InputImage b) {
         double[] aRgb = a.getRgb();
         double[] bRgb = b.getRgb();
@@ -165,6 +321,9 @@ public class StructuralSimilarity {
         private final Set<Path> deleteFolders = new HashSet<>();
         private DuplicateHandler duplicateHandler = DuplicateHandler.noop();
         private final Set<String> extensions = Set.of(".jpg", ".jpeg");
+        private boolean useThumbnails = false;
+        private int neighbourCount = 0;
+        private Path neighbourReport = null;
 
         /** Prevent instantiation. */
         private Builder() {
@@ -246,6 +405,72 @@ public class StructuralSimilarity {
             return this;
         }
 
+        /**
+         * Sets whether features are computed from the embedded EXIF thumbnail of an image instead of the full image.
+         * Only the first few kilobytes of each file are read when a thumbnail is used. Images without a thumbnail, or
+         * whose thumbnail has a different aspect ratio, are fully decoded. Defaults to {@code false}.
+         * <p>
+         * Thumbnails can be stale: many editors don't regenerate them after exposure, colour or crop edits, so an
+         * edited copy can look identical to its original. Pairs found from thumbnails are therefore re-checked with a
+         * full decode of both images before the duplicate handler is called. Neighbour reports are not re-checked;
+         * SSIMs computed from thumbnails are marked in the {@code thumbnail} column instead.
+         *
+         * @param v whether to use thumbnails
+         * @return builder with thumbnail use set
+         */
+        @Nonnull
+        public Builder withThumbnails(boolean v) {
+            this.useThumbnails = v;
+            return this;
+        }
+
+        /**
+         * Switches to report mode. Instead of handling duplicates above the threshold, the {@code k} most similar
+         * images of each image are written to a TSV file with the columns {@code image}, {@code neighbour},
+         * {@code ssim}, {@code rgbClose} and {@code thumbnail}. Images are referenced by index into a table with the
+         * columns {@code index}, {@code keep} and {@code path}, written next to the report with the extension
+         * {@code .images.tsv}. Backslashes, tabs and line breaks in paths are escaped as {@code \\}, {@code \t},
+         * {@code \n} and {@code \r}. Memory use is bounded by the number of images times {@code k}.
+         * <p>
+         * With {@link #withThumbnails(boolean)}, SSIMs may be computed from stale EXIF thumbnails and are not
+         * re-checked against the full images. Such rows have {@code thumbnail} set to {@code true} and should be
+         * verified before acting on them.
+         *
+         * @param k number of neighbours to keep per image
+         * @param s non-null path of the report
+         * @return builder with neighbour report set
+         */
+        @Nonnull
+        public Builder withNeighbourReport(int k, @Nonnull String s) {
+            return withNeighbourReport(k, Path.of(s));
+        }
+
+        /**
+         * Switches to report mode. Instead of handling duplicates above the threshold, the {@code k} most similar
+         * images of each image are written to a TSV file with the columns {@code image}, {@code neighbour},
+         * {@code ssim}, {@code rgbClose} and {@code thumbnail}. Images are referenced by index into a table with the
+         * columns {@code index}, {@code keep} and {@code path}, written next to the report with the extension
+         * {@code .images.tsv}. Backslashes, tabs and line breaks in paths are escaped as {@code \\}, {@code \t},
+         * {@code \n} and {@code \r}. Memory use is bounded by the number of images times {@code k}.
+         * <p>
+         * With {@link #withThumbnails(boolean)}, SSIMs may be computed from stale EXIF thumbnails and are not
+         * re-checked against the full images. Such rows have {@code thumbnail} set to {@code true} and should be
+         * verified before acting on them.
+         *
+         * @param k    number of neighbours to keep per image
+         * @param path non-null path of the report
+         * @return builder with neighbour report set
+         */
+        @Nonnull
+        private Builder withNeighbourReport(int k, @Nonnull Path path) {
+            if (k <= 0) {
+                throw new IllegalArgumentException("k must be positive: " + k);
+            }
+            this.neighbourCount = k;
+            this.neighbourReport = path.toAbsolutePath();
+            return this;
+        }
+
         /**
          * Builds the Structural Similarity runner.
          *